@@ -1,44 +1,94 @@
 package soundlab.elasticsearchhelper;
 
 import lombok.AccessLevel;
+import lombok.Getter;
 import lombok.experimental.FieldDefaults;
 import lombok.experimental.NonFinal;
 import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.Function;
 
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
-public class BulkInsert implements Closeable {
+public class BulkInsert<T> implements Closeable {
+    // shared, so inserters created without a limiter are still admitted together
+    private static final ConcurrencyLimiter DEFAULT_LIMITER = ConcurrencyLimiter.builder().name("bulk").build();
+
     RestHighLevelClient client;
     String index;
     int size;
     ElasticsearchConfig config;
+    @Getter
+    ConcurrencyLimiter limiter;
+    Function<T, String> routingExtractor; // returning null means no routing
 
     @NonFinal
     BulkRequest bulkRequest;
 
-    private BulkInsert(RestHighLevelClient client, ElasticsearchConfig config, String index, int size) {
+    private BulkInsert(RestHighLevelClient client, ElasticsearchConfig config, String index, int size,
+                       ConcurrencyLimiter limiter, Function<T, String> routingExtractor) {
         this.client = client;
         this.config = config;
         this.index = index;
         this.size = size;
+        this.limiter = limiter;
+        this.routingExtractor = routingExtractor;
         this.bulkRequest = new BulkRequest();
     }
 
-    public static BulkInsert create(RestHighLevelClient client, ElasticsearchConfig config, String index, int size) {
-        return new BulkInsert(client, config, index, size);
+    /**
+     * Creates a bulk inserter admitted by {@link #getDefaultLimiter()}. The default limiter is shared by every
+     * inserter created this way in the JVM, whatever cluster it writes to, and a flush waits at most 30 seconds
+     * for a permit before failing with {@link ConcurrencyLimitExceededException}. Pass a limiter per cluster when
+     * writing to more than one.
+     */
+    public static <T> BulkInsert<T> create(RestHighLevelClient client, ElasticsearchConfig config, String index,
+                                           int size) {
+        return create(client, config, index, size, DEFAULT_LIMITER);
+    }
+
+    public static <T> BulkInsert<T> create(RestHighLevelClient client, ElasticsearchConfig config, String index,
+                                           int size, ConcurrencyLimiter limiter) {
+        return create(client, config, index, size, limiter, entity -> null);
     }
 
-    public <T> void save(T entity) throws IOException {
+    /**
+     * Creates a bulk inserter which routes each entity by the value given extractor returns
+     *
+     * @param routingExtractor routing value of an entity, returning null means no routing
+     */
+    public static <T> BulkInsert<T> create(RestHighLevelClient client, ElasticsearchConfig config, String index,
+                                           int size, ConcurrencyLimiter limiter,
+                                           Function<T, String> routingExtractor) {
+        return new BulkInsert<>(client, config, index, size, limiter, routingExtractor);
+    }
+
+    /**
+     * @return limiter admitting inserters created without one, to watch its limit and queue depth
+     */
+    public static ConcurrencyLimiter getDefaultLimiter() {
+        return DEFAULT_LIMITER;
+    }
+
+    public void save(T entity) throws IOException {
+        save(entity, routingExtractor.apply(entity));
+    }
+
+    public void save(T entity, String routing) throws IOException {
         // insert to buffer
-        var request = new IndexRequest(index);
+        var request = new IndexRequest(index, config.getElasticType());
         var json = JsonUtil.getJson(config.getObjectMapper(), entity);
         request.source(json, XContentType.JSON);
+        if (routing != null)
+            request.routing(routing);
         bulkRequest.add(request);
 
         // check for buffer
@@ -52,7 +102,8 @@ public class BulkInsert implements Closeable {
         if (itemSize == 0)
             return;
 
-        var bulkResponse = client.bulk(bulkRequest, RequestOptions.DEFAULT);
+        var bulkResponse = limiter.execute(() -> client.bulk(bulkRequest, RequestOptions.DEFAULT),
+                BulkInsert::isRejected);
         if (bulkResponse.hasFailures()) {
             throw new IOException("Bulk error: " + bulkResponse.buildFailureMessage());
         }
@@ -60,6 +111,16 @@ public class BulkInsert implements Closeable {
         bulkRequest = new BulkRequest();
     }
 
+    /**
+     * Rejected items mean the write thread pool is saturated
+     */
+    static boolean isRejected(BulkResponse bulkResponse) {
+        if (!bulkResponse.hasFailures())
+            return false;
+        return Arrays.stream(bulkResponse.getItems())
+                .anyMatch(item -> item.isFailed() && item.status() == RestStatus.TOO_MANY_REQUESTS);
+    }
+
     @Override
     public void close() throws IOException {
         flush();
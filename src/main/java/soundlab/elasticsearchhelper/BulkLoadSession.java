@@ -0,0 +1,235 @@
+package soundlab.elasticsearchhelper;
+
+import lombok.AccessLevel;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link BulkInsert} wrapper which tunes index settings for ingestion. Refresh is disabled and replicas (including
+ * auto expanded ones) are dropped while loading; on close original settings are restored (even if loading failed),
+ * then the index is refreshed, optionally force merged and awaited to turn green.
+ * <p>
+ * Blocking calls are bounded by the socket timeout of the client (30 seconds by default), so green status is polled
+ * with short waits until the green timeout passes, and a force merge outliving the socket timeout is left running
+ * on the cluster instead of failing the close.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class BulkLoadSession implements Closeable {
+    private static final String REFRESH_INTERVAL = "index.refresh_interval";
+    private static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+    private static final String AUTO_EXPAND_REPLICAS = "index.auto_expand_replicas";
+    private static final String[] SNAPSHOT_SETTINGS = {REFRESH_INTERVAL, AUTO_EXPAND_REPLICAS, NUMBER_OF_REPLICAS};
+
+    RestHighLevelClient elasticClient;
+    String[] indices; // concrete indices, index name may be an alias
+    Map<String, Settings> originalSettings;
+    int forceMergeSegments; // zero or negative means no force merge
+    TimeValue greenTimeout;
+    TimeValue healthPollTimeout;
+    @Getter
+    BulkInsert<Object> bulkInsert;
+
+    @NonFinal
+    boolean closed;
+    @NonFinal
+    @Getter
+    boolean forceMergeTimedOut; // merge request outlived the socket timeout, merge goes on in the cluster
+
+    private BulkLoadSession(RestHighLevelClient elasticClient, Map<String, Settings> originalSettings,
+                            int forceMergeSegments, TimeValue greenTimeout, TimeValue healthPollTimeout,
+                            BulkInsert<Object> bulkInsert) {
+        this.elasticClient = elasticClient;
+        this.indices = originalSettings.keySet().toArray(new String[0]);
+        this.originalSettings = originalSettings;
+        this.forceMergeSegments = forceMergeSegments;
+        this.greenTimeout = greenTimeout;
+        this.healthPollTimeout = healthPollTimeout;
+        this.bulkInsert = bulkInsert;
+    }
+
+    public static BulkLoadSession open(ElasticsearchClient client, String index, int size) throws IOException {
+        return builder().client(client).index(index).size(size).open();
+    }
+
+    public static BulkLoadSessionBuilder builder() {
+        return new BulkLoadSessionBuilder()
+                .refreshInterval("-1")
+                .replicas(0)
+                .forceMergeSegments(0)
+                .greenTimeout("5m")
+                .healthPollTimeout("10s");
+    }
+
+    /**
+     * Snapshots current settings of the index and applies ingestion settings
+     *
+     * @param client             client to load with
+     * @param index              index or alias to load into
+     * @param size               bulk size
+     * @param refreshInterval    refresh interval while loading, "-1" disables refresh
+     * @param replicas           number of replicas while loading, auto expanding replicas is disabled meanwhile
+     * @param forceMergeSegments max number of segments to force merge on close, zero or negative means no merge
+     * @param greenTimeout       how long to wait for green status on close
+     * @param healthPollTimeout  wait of a single health request, must stay below the socket timeout of the client
+     * @return opened session
+     */
+    @Builder(buildMethodName = "open")
+    private static BulkLoadSession create(ElasticsearchClient client, String index, int size, String refreshInterval,
+                                          int replicas, int forceMergeSegments, String greenTimeout,
+                                          String healthPollTimeout) throws IOException {
+        if (client == null || index == null || size < 1)
+            throw new IllegalArgumentException("Client, index and a positive bulk size must be set");
+        var greenTimeoutValue = TimeValue.parseTimeValue(greenTimeout, "green_timeout");
+        var healthPollTimeoutValue = TimeValue.parseTimeValue(healthPollTimeout, "health_poll_timeout");
+        if (healthPollTimeoutValue.millis() <= 0)
+            throw new IllegalArgumentException("Health poll timeout must be positive: " + healthPollTimeout);
+        var elasticClient = client.getElasticClient();
+        var getSettingsRequest = new GetSettingsRequest().indices(index).names(SNAPSHOT_SETTINGS);
+        var getSettingsResponse = elasticClient.indices().getSettings(getSettingsRequest, RequestOptions.DEFAULT);
+
+        Map<String, Settings> originalSettings = new HashMap<>();
+        var concreteIndices = getSettingsResponse.getIndexToSettings().keysIt();
+        while (concreteIndices.hasNext()) {
+            var concreteIndex = concreteIndices.next();
+            var original = Settings.builder();
+            for (var name : SNAPSHOT_SETTINGS)
+                original.put(name, getSettingsResponse.getSetting(concreteIndex, name));
+            originalSettings.put(concreteIndex, original.build());
+        }
+        if (originalSettings.isEmpty())
+            throw new IOException("Index not found: " + index);
+
+        var session = new BulkLoadSession(elasticClient, originalSettings, forceMergeSegments, greenTimeoutValue,
+                healthPollTimeoutValue, client.bulkInsert(index, size));
+        try {
+            session.updateSettings(Settings.builder()
+                    .put(REFRESH_INTERVAL, refreshInterval)
+                    // auto expansion would override the replica count
+                    .put(AUTO_EXPAND_REPLICAS, false)
+                    .put(NUMBER_OF_REPLICAS, replicas)
+                    .build());
+        } catch (IOException | RuntimeException e) {
+            // some indices may already be updated
+            try {
+                session.restoreSettings();
+            } catch (IOException | RuntimeException restoreFailure) {
+                e.addSuppressed(restoreFailure);
+            }
+            throw e;
+        }
+        return session;
+    }
+
+    public <T> void save(T entity) throws IOException {
+        bulkInsert.save(entity);
+    }
+
+    public void flush() throws IOException {
+        bulkInsert.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+
+        try {
+            bulkInsert.close();
+        } catch (IOException | RuntimeException e) {
+            try {
+                restoreSettings();
+            } catch (IOException | RuntimeException restoreFailure) {
+                e.addSuppressed(restoreFailure);
+            }
+            throw e;
+        }
+        restoreSettings();
+
+        elasticClient.indices().refresh(new RefreshRequest(indices), RequestOptions.DEFAULT);
+        if (forceMergeSegments > 0)
+            forceMerge();
+        waitForGreen();
+    }
+
+    private void forceMerge() throws IOException {
+        try {
+            elasticClient.indices().forcemerge(new ForceMergeRequest(indices).maxNumSegments(forceMergeSegments),
+                    RequestOptions.DEFAULT);
+        } catch (SocketTimeoutException e) {
+            // the cluster keeps merging after the client gives up, the index is usable meanwhile
+            forceMergeTimedOut = true;
+        }
+    }
+
+    private void waitForGreen() throws IOException {
+        var deadline = System.nanoTime() + greenTimeout.nanos();
+        while (true) {
+            var remainingMillis = Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+            var wait = TimeValue.timeValueMillis(Math.min(remainingMillis, healthPollTimeout.millis()));
+            var healthRequest = new ClusterHealthRequest(indices).waitForGreenStatus().timeout(wait);
+            var healthResponse = elasticClient.cluster().health(healthRequest, RequestOptions.DEFAULT);
+            if (!healthResponse.isTimedOut())
+                return;
+            if (System.nanoTime() - deadline >= 0)
+                throw new IOException("Indices did not turn green in " + greenTimeout + ": "
+                        + healthResponse.getStatus());
+        }
+    }
+
+    private void updateSettings(Settings settings) throws IOException {
+        for (var index : indices) {
+            var request = new UpdateSettingsRequest(index).settings(settings);
+            var response = elasticClient.indices().putSettings(request, RequestOptions.DEFAULT);
+            if (!response.isAcknowledged())
+                throw new IOException("Settings update is not acknowledged: " + index);
+        }
+    }
+
+    private void restoreSettings() throws IOException {
+        IOException failure = null;
+        // try every index, a failing one should not leave the others in ingestion mode
+        for (var entry : originalSettings.entrySet()) {
+            var original = entry.getValue();
+            var settings = Settings.builder();
+            for (var name : SNAPSHOT_SETTINGS) {
+                // unset means index default
+                if (original.get(name) == null)
+                    settings.putNull(name);
+                else
+                    settings.put(name, original.get(name));
+            }
+            try {
+                var request = new UpdateSettingsRequest(entry.getKey()).settings(settings.build());
+                var response = elasticClient.indices().putSettings(request, RequestOptions.DEFAULT);
+                if (!response.isAcknowledged())
+                    throw new IOException("Settings restore is not acknowledged: " + entry.getKey());
+            } catch (IOException | RuntimeException e) {
+                if (failure == null)
+                    failure = new IOException("Restoring settings failed", e);
+                else
+                    failure.addSuppressed(e);
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+}
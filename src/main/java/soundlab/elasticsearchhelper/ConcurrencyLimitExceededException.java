@@ -0,0 +1,11 @@
+package soundlab.elasticsearchhelper;
+
+import java.io.IOException;
+
+public class ConcurrencyLimitExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ConcurrencyLimitExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,310 @@
+package soundlab.elasticsearchhelper;
+
+import lombok.AccessLevel;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Client side admission controller which bounds the number of in-flight requests.
+ * <p>
+ * The limit adapts from observed latency (gradient of long term average to current round trip time)
+ * and is backed off multiplicatively when the cluster rejects a request with 429 or times out.
+ * When the limit is reached, callers either wait in a bounded queue or are rejected immediately.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class ConcurrencyLimiter {
+    // smoothing factor of the long term round trip time average, roughly a 600 sample window
+    private static final double LONG_RTT_FACTOR = 2.0 / 601;
+
+    @Getter
+    String name;
+    @Getter
+    int minLimit;
+    @Getter
+    int maxLimit;
+    double smoothing;
+    double rttTolerance;
+    double backoffRatio;
+    @Getter
+    Behaviour behaviour;
+    @Getter
+    int maxQueueSize;
+    @Getter
+    long maxQueueTimeMillis; // zero or negative means wait forever
+
+    ReentrantLock lock = new ReentrantLock();
+    Condition permitReleased = lock.newCondition();
+    AtomicLong rejectedCount = new AtomicLong();
+    AtomicLong droppedCount = new AtomicLong();
+
+    @NonFinal
+    double limit;
+    @NonFinal
+    double longRttNanos;
+    @NonFinal
+    int inFlight;
+    @NonFinal
+    int queued;
+
+    @Builder
+    private ConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit, double smoothing,
+                               double rttTolerance, double backoffRatio, Behaviour behaviour, int maxQueueSize,
+                               long maxQueueTimeMillis) {
+        if (minLimit < 1 || maxLimit < minLimit)
+            throw new IllegalArgumentException("Invalid limits, min: " + minLimit + " max: " + maxLimit);
+        if (smoothing <= 0 || smoothing > 1)
+            throw new IllegalArgumentException("Smoothing must be in (0, 1]: " + smoothing);
+        if (backoffRatio <= 0 || backoffRatio >= 1)
+            throw new IllegalArgumentException("Backoff ratio must be in (0, 1): " + backoffRatio);
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.smoothing = smoothing;
+        this.rttTolerance = rttTolerance;
+        this.backoffRatio = backoffRatio;
+        this.behaviour = behaviour;
+        this.maxQueueSize = maxQueueSize;
+        this.maxQueueTimeMillis = maxQueueTimeMillis;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    public static ConcurrencyLimiterBuilder builder() {
+        return new ConcurrencyLimiterBuilder()
+                .name("default")
+                .initialLimit(20)
+                .minLimit(1)
+                .maxLimit(200)
+                .smoothing(0.2)
+                .rttTolerance(1.5)
+                .backoffRatio(0.9)
+                .behaviour(Behaviour.QUEUE)
+                .maxQueueSize(Integer.MAX_VALUE)
+                .maxQueueTimeMillis(30_000);
+    }
+
+    /**
+     * Runs given call within a permit, feeding its latency and outcome back to the limit
+     *
+     * @param call request to run
+     * @param <T>  type of the response
+     * @return response of the call
+     * @throws ConcurrencyLimitExceededException if no permit could be acquired
+     */
+    public <T> T execute(Call<T> call) throws IOException {
+        return execute(call, response -> false);
+    }
+
+    /**
+     * Runs given call within a permit, feeding its latency and outcome back to the limit
+     *
+     * @param call       request to run
+     * @param isRejected whether a successful response still reports rejections, e.g. failed bulk items
+     * @param <T>        type of the response
+     * @return response of the call
+     * @throws ConcurrencyLimitExceededException if no permit could be acquired
+     */
+    public <T> T execute(Call<T> call, Predicate<T> isRejected) throws IOException {
+        var permit = acquire();
+        try {
+            var result = call.call();
+            if (isRejected.test(result))
+                permit.dropped();
+            else
+                permit.success();
+            return result;
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() == RestStatus.TOO_MANY_REQUESTS)
+                permit.dropped();
+            throw e;
+        } catch (SocketTimeoutException e) {
+            permit.dropped();
+            throw e;
+        } finally {
+            permit.ignore();
+        }
+    }
+
+    /**
+     * Acquires a permit, waiting in queue or rejecting according to {@link Behaviour}. Returned permit must be
+     * released with one of {@link Permit#success()}, {@link Permit#dropped()} or {@link Permit#ignore()}.
+     *
+     * @return acquired permit
+     * @throws ConcurrencyLimitExceededException if no permit could be acquired
+     */
+    public Permit acquire() throws IOException {
+        lock.lock();
+        try {
+            if (inFlight >= (int) limit) {
+                if (behaviour == Behaviour.REJECT || queued >= maxQueueSize)
+                    throw reject();
+                waitForPermit();
+            }
+            inFlight++;
+            return new Permit(System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void waitForPermit() throws IOException {
+        queued++;
+        try {
+            var remaining = TimeUnit.MILLISECONDS.toNanos(maxQueueTimeMillis);
+            while (inFlight >= (int) limit) {
+                if (maxQueueTimeMillis <= 0)
+                    permitReleased.await();
+                else if (remaining <= 0)
+                    throw reject();
+                else
+                    remaining = permitReleased.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + name + " permit");
+        } finally {
+            queued--;
+        }
+    }
+
+    private ConcurrencyLimitExceededException reject() {
+        rejectedCount.incrementAndGet();
+        return new ConcurrencyLimitExceededException(
+                "Concurrency limit exceeded for " + name + ", limit: " + (int) limit + " queued: " + queued);
+    }
+
+    private void release(long rttNanos, boolean didDrop, boolean sample) {
+        lock.lock();
+        try {
+            var inFlightAtRelease = inFlight--;
+            if (sample)
+                updateLimit(rttNanos, inFlightAtRelease, didDrop);
+            permitReleased.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void updateLimit(long rttNanos, int inFlightAtRelease, boolean didDrop) {
+        double newLimit;
+        if (didDrop) {
+            droppedCount.incrementAndGet();
+            newLimit = limit * backoffRatio;
+        } else {
+            var rtt = Math.max(1, rttNanos);
+            longRttNanos = longRttNanos == 0 ? rtt : longRttNanos * (1 - LONG_RTT_FACTOR) + rtt * LONG_RTT_FACTOR;
+            // let the long term average recover quickly once a latency spike is over
+            if (longRttNanos / rtt > 2)
+                longRttNanos *= 0.95;
+            // requests are not using the limit, so latency tells nothing about it
+            if (inFlightAtRelease < limit / 2)
+                return;
+            var gradient = Math.max(0.5, Math.min(1.0, rttTolerance * longRttNanos / rtt));
+            newLimit = limit * gradient + Math.sqrt(limit);
+        }
+        newLimit = limit * (1 - smoothing) + newLimit * smoothing;
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyLimiter{name=" + name + ", limit=" + getLimit() + ", inFlight=" + getInFlight()
+                + ", queued=" + getQueued() + ", rejected=" + getRejectedCount() + ", dropped=" + getDroppedCount()
+                + "}";
+    }
+
+    public enum Behaviour {
+        QUEUE, // wait for a permit up to maxQueueSize and maxQueueTimeMillis
+        REJECT // fail immediately when limit is reached
+    }
+
+    @FunctionalInterface
+    public interface Call<T> {
+        T call() throws IOException;
+    }
+
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    public class Permit {
+        final long startNanos;
+        boolean released;
+
+        private Permit(long startNanos) {
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * Releases the permit and samples its latency
+         */
+        public void success() {
+            finish(false, true);
+        }
+
+        /**
+         * Releases the permit as rejected or timed out by the cluster, which backs the limit off
+         */
+        public void dropped() {
+            finish(true, true);
+        }
+
+        /**
+         * Releases the permit without affecting the limit, no-op if already released
+         */
+        public void ignore() {
+            finish(false, false);
+        }
+
+        private void finish(boolean didDrop, boolean sample) {
+            if (released)
+                return;
+            released = true;
+            release(System.nanoTime() - startNanos, didDrop, sample);
+        }
+    }
+}
@@ -7,7 +7,10 @@ import org.apache.http.HttpHost;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchScrollRequest;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestClient;
@@ -32,6 +35,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
@@ -39,15 +43,24 @@ import java.util.stream.Collectors;
 public class ElasticsearchClient implements Closeable {
     RestHighLevelClient elasticClient;
     ElasticsearchConfig config;
+    ConcurrencyLimiter readLimiter;
+    ConcurrencyLimiter writeLimiter;
 
     public ElasticsearchClient() {
-        this.elasticClient = new RestHighLevelClient(RestClient.builder(new HttpHost("localhost", 9200, "http")));
-        this.config = new ElasticsearchConfig();
+        this(new ElasticsearchConfig(), "localhost", 9200);
     }
 
     public ElasticsearchClient(ElasticsearchConfig config, String hostname, int port) {
+        this(config, hostname, port, ConcurrencyLimiter.builder().name("read").build(),
+                ConcurrencyLimiter.builder().name("write").build());
+    }
+
+    public ElasticsearchClient(ElasticsearchConfig config, String hostname, int port,
+                               ConcurrencyLimiter readLimiter, ConcurrencyLimiter writeLimiter) {
         this.elasticClient = new RestHighLevelClient(RestClient.builder(new HttpHost(hostname, port, "http")));
         this.config = config;
+        this.readLimiter = readLimiter;
+        this.writeLimiter = writeLimiter;
     }
 
     private static List<String> toStringList(Text[] fragments) {
@@ -66,13 +79,7 @@ public class ElasticsearchClient implements Closeable {
     }
 
     public Optional<String> querySingle(ElasticsearchQuery elasticHelperQuery) throws IOException {
-        if (elasticHelperQuery.getQuery() == null)
-            throw new IllegalArgumentException("Query is not set in elasticHelperQuery");
-        SearchRequest searchRequest;
-        if (elasticHelperQuery.getIndices() == null)
-            searchRequest = new SearchRequest();
-        else
-            searchRequest = new SearchRequest(elasticHelperQuery.getIndices().toArray(new String[0]));
+        var searchRequest = newSearchRequest(elasticHelperQuery);
         var searchSourceBuilder = new SearchSourceBuilder();
         searchSourceBuilder.query(elasticHelperQuery.getQuery()).size(1);
 
@@ -84,7 +91,7 @@ public class ElasticsearchClient implements Closeable {
         setSorting(elasticHelperQuery, searchSourceBuilder);
 
         searchRequest.source(searchSourceBuilder);
-        var searchResponse = elasticClient.search(searchRequest, RequestOptions.DEFAULT);
+        var searchResponse = readLimiter.execute(() -> elasticClient.search(searchRequest, RequestOptions.DEFAULT));
         var hits = searchResponse.getHits();
 
         //        if (hits.getTotalHits().value == 0)
@@ -102,7 +109,129 @@ public class ElasticsearchClient implements Closeable {
         return Optional.of(json);
     }
 
+    /**
+     * Counts documents matching given query without fetching any hits or running post-processing
+     *
+     * @param elasticHelperQuery query, only query, indices and routing are used
+     * @return number of matching documents
+     */
+    public long count(ElasticsearchQuery elasticHelperQuery) throws IOException {
+        var searchRequest = buildCountRequest(elasticHelperQuery, 0);
+        var searchResponse = readLimiter.execute(() -> elasticClient.search(searchRequest, RequestOptions.DEFAULT));
+        return searchResponse.getHits().totalHits;
+    }
+
+    /**
+     * Checks whether any document matches given query, each shard stops at its first match
+     *
+     * @param elasticHelperQuery query, only query, indices and routing are used
+     * @return true if at least one document matches
+     */
+    public boolean exists(ElasticsearchQuery elasticHelperQuery) throws IOException {
+        var searchRequest = buildCountRequest(elasticHelperQuery, 1);
+        var searchResponse = readLimiter.execute(() -> elasticClient.search(searchRequest, RequestOptions.DEFAULT));
+        return searchResponse.getHits().totalHits > 0;
+    }
+
     public SearchResult queryAll(ElasticsearchQuery elasticHelperQuery) throws IOException {
+        var searchRequest = buildSearchRequest(elasticHelperQuery);
+        var searchResponse = readLimiter.execute(() -> elasticClient.search(searchRequest, RequestOptions.DEFAULT));
+        return toSearchResult(elasticHelperQuery, searchResponse);
+    }
+
+    /**
+     * Compiles given query into a search template and stores it in the cluster under an id derived from its source,
+     * so each call only sends the id and parameters. Parameters are referenced with mustache placeholders in query
+     * values, e.g. {@code QueryBuilders.termQuery("tenant", "{{tenant}}")}. Preparing the same query again reuses
+     * the stored template.
+     *
+     * @param elasticHelperQuery query to compile
+     * @return prepared query to be run with parameters
+     */
+    public PreparedQuery prepare(ElasticsearchQuery elasticHelperQuery) throws IOException {
+        var preparedQuery = prepareInline(elasticHelperQuery);
+        return preparedQuery.store(PreparedQuery.scriptId(preparedQuery.getSource()));
+    }
+
+    /**
+     * Compiles given query into a search template without storing it. Every call sends the whole template source,
+     * which costs about as much as building the query per call; meant for clusters where scripts can not be stored.
+     *
+     * @param elasticHelperQuery query to compile
+     * @return prepared query to be run with parameters
+     */
+    public PreparedQuery prepareInline(ElasticsearchQuery elasticHelperQuery) {
+        var source = Strings.toString(buildSearchRequest(elasticHelperQuery).source());
+        // body comes from the template, request keeps indices, routing and scroll only
+        var searchRequest = newSearchRequest(elasticHelperQuery);
+        if (elasticHelperQuery.getScroll() != null)
+            searchRequest.scroll(elasticHelperQuery.getScroll());
+        return new PreparedQuery(this, elasticHelperQuery, searchRequest, source);
+    }
+
+    public List<MultiSearchResult> queryMany(List<ElasticsearchQuery> elasticHelperQueries) throws IOException {
+        return queryMany(elasticHelperQueries, 0);
+    }
+
+    /**
+     * Runs given queries in a single multi search round trip
+     *
+     * @param elasticHelperQueries  queries to run, invalid or scrolling queries fail in their own slot
+     * @param maxConcurrentSearches max_concurrent_searches of the request, zero or negative means cluster default
+     * @return results or failures in the same order with given queries
+     */
+    public List<MultiSearchResult> queryMany(List<ElasticsearchQuery> elasticHelperQueries, int maxConcurrentSearches)
+            throws IOException {
+        if (elasticHelperQueries.isEmpty())
+            return new ArrayList<>();
+
+        var multiSearchRequest = new MultiSearchRequest();
+        if (maxConcurrentSearches > 0)
+            multiSearchRequest.maxConcurrentSearchRequests(maxConcurrentSearches);
+
+        // invalid queries fail in their own slot and are not sent
+        var invalid = new MultiSearchResult[elasticHelperQueries.size()];
+        for (var i = 0; i < invalid.length; i++) {
+            var elasticHelperQuery = elasticHelperQueries.get(i);
+            try {
+                if (elasticHelperQuery.getScroll() != null)
+                    throw new IllegalArgumentException("Scrolling is not supported in multi search");
+                multiSearchRequest.add(buildSearchRequest(elasticHelperQuery));
+            } catch (IllegalArgumentException e) {
+                invalid[i] = MultiSearchResult.failure(e);
+            }
+        }
+
+        MultiSearchResponse.Item[] items;
+        if (multiSearchRequest.requests().isEmpty())
+            items = new MultiSearchResponse.Item[0];
+        else
+            items = readLimiter.execute(() -> elasticClient.msearch(multiSearchRequest, RequestOptions.DEFAULT))
+                    .getResponses();
+
+        List<MultiSearchResult> results = new ArrayList<>(invalid.length);
+        var itemIndex = 0;
+        for (var i = 0; i < invalid.length; i++) {
+            if (invalid[i] != null) {
+                results.add(invalid[i]);
+                continue;
+            }
+            var item = items[itemIndex++];
+            if (item.isFailure()) {
+                results.add(MultiSearchResult.failure(item.getFailure()));
+                continue;
+            }
+            try {
+                results.add(MultiSearchResult.success(toSearchResult(elasticHelperQueries.get(i),
+                        item.getResponse())));
+            } catch (IOException | RuntimeException e) {
+                results.add(MultiSearchResult.failure(e));
+            }
+        }
+        return results;
+    }
+
+    private SearchRequest newSearchRequest(ElasticsearchQuery elasticHelperQuery) {
         if (elasticHelperQuery.getQuery() == null)
             throw new IllegalArgumentException("Query is not set in elasticHelperQuery");
         SearchRequest searchRequest;
@@ -110,6 +239,28 @@ public class ElasticsearchClient implements Closeable {
             searchRequest = new SearchRequest();
         else
             searchRequest = new SearchRequest(elasticHelperQuery.getIndices().toArray(new String[0]));
+        // routing narrows the search to the shards of the routing value
+        if (elasticHelperQuery.getRouting() != null)
+            searchRequest.routing(elasticHelperQuery.getRouting());
+        return searchRequest;
+    }
+
+    private SearchRequest buildCountRequest(ElasticsearchQuery elasticHelperQuery, int terminateAfter) {
+        var searchRequest = newSearchRequest(elasticHelperQuery);
+        // no hits, no source; 6.x can only track total hits exactly, terminate_after bounds the shard work
+        var searchSourceBuilder = new SearchSourceBuilder()
+                .query(elasticHelperQuery.getQuery())
+                .size(0)
+                .fetchSource(false)
+                .trackTotalHits(true);
+        if (terminateAfter > 0)
+            searchSourceBuilder.terminateAfter(terminateAfter);
+        searchRequest.source(searchSourceBuilder);
+        return searchRequest;
+    }
+
+    SearchRequest buildSearchRequest(ElasticsearchQuery elasticHelperQuery) {
+        var searchRequest = newSearchRequest(elasticHelperQuery);
 
         var searchSourceBuilder = new SearchSourceBuilder();
 
@@ -148,9 +299,11 @@ public class ElasticsearchClient implements Closeable {
             searchRequest.scroll(elasticHelperQuery.getScroll());
         }
 
-        // get response
-        var searchResponse = elasticClient.search(searchRequest, RequestOptions.DEFAULT);
+        return searchRequest;
+    }
 
+    SearchResult toSearchResult(ElasticsearchQuery elasticHelperQuery, SearchResponse searchResponse)
+            throws IOException {
         var from = elasticHelperQuery.getFrom();
         //        var totalHits = searchResponse.getHits().getTotalHits().value;
         var totalHits = searchResponse.getHits().totalHits;
@@ -167,7 +320,8 @@ public class ElasticsearchClient implements Closeable {
                 hits.addAll(Arrays.asList(searchHits));
                 var scrollRequest = new SearchScrollRequest(scrollId);
                 scrollRequest.scroll(elasticHelperQuery.getScroll());
-                searchResponse = elasticClient.scroll(scrollRequest, RequestOptions.DEFAULT);
+                searchResponse =
+                        readLimiter.execute(() -> elasticClient.scroll(scrollRequest, RequestOptions.DEFAULT));
                 scrollId = searchResponse.getScrollId();
                 searchHits = searchResponse.getHits().getHits();
             }
@@ -221,32 +375,27 @@ public class ElasticsearchClient implements Closeable {
     }
 
     public String save(String index, String json) throws IOException {
-        try {
-            IndexRequest request;
-            // get id if exists
-            var id = JsonUtil.getId(config.getObjectMapper(), json);
-            if (id.isPresent()) {
-                //            var request = new IndexRequest(index);
-                request = new IndexRequest(index, config.getElasticType()).id(id.get());
-            } else {
-                //            var request = new IndexRequest(index);
-                request = new IndexRequest(index, config.getElasticType());
-            }
-            request.source(json, XContentType.JSON);
-            var response = elasticClient.index(request, RequestOptions.DEFAULT);
-            return response.getId();
-        } catch (IOException ioe) {
-            throw new IOException(ioe);
-        }
+        // get id if exists
+        var id = JsonUtil.getId(config.getObjectMapper(), json);
+        return save(index, id.orElse(null), json, null);
     }
 
     public String save(String index, String id, String json) throws IOException {
+        return save(index, id, json, null);
+    }
+
+    public String save(String index, String id, String json, String routing) throws IOException {
         try {
             //            var request = new IndexRequest(index).id(id);
-            var request = new IndexRequest(index, config.getElasticType()).id(id);
+            var request = new IndexRequest(index, config.getElasticType()).id(id); // null id means auto generated
+            if (routing != null)
+                request.routing(routing);
             request.source(json, XContentType.JSON);
-            var response = elasticClient.index(request, RequestOptions.DEFAULT);
+            var response = writeLimiter.execute(() -> elasticClient.index(request, RequestOptions.DEFAULT));
             return response.getId();
+        } catch (ConcurrencyLimitExceededException e) {
+            // let callers tell rejection apart from request failures, like the other operations do
+            throw e;
         } catch (IOException ioe) {
             throw new IOException(ioe);
         }
@@ -275,9 +424,15 @@ public class ElasticsearchClient implements Closeable {
     }*/
 
     public Optional<String> findById(String index, Object id) throws IOException {
+        return findById(index, id, (String) null);
+    }
+
+    public Optional<String> findById(String index, Object id, String routing) throws IOException {
         //        var request = new GetRequest(index, id);
         var request = new GetRequest(index, config.getElasticType(), id.toString());
-        var response = elasticClient.get(request, RequestOptions.DEFAULT);
+        if (routing != null)
+            request.routing(routing);
+        var response = readLimiter.execute(() -> elasticClient.get(request, RequestOptions.DEFAULT));
         if (response.isExists())
             return Optional.of(response.getSourceAsString());
         else
@@ -285,7 +440,11 @@ public class ElasticsearchClient implements Closeable {
     }
 
     public <T> Optional<T> findById(String index, Object id, Class<T> valueType) throws IOException {
-        var json = findById(index, id);
+        return findById(index, id, null, valueType);
+    }
+
+    public <T> Optional<T> findById(String index, Object id, String routing, Class<T> valueType) throws IOException {
+        var json = findById(index, id, routing);
         if (json.isPresent())
             return Optional.of(config.getObjectMapper().readValue(json.get(), valueType));
         else
@@ -293,9 +452,15 @@ public class ElasticsearchClient implements Closeable {
     }
 
     public void deleteById(String index, Object id) throws IOException {
+        deleteById(index, id, null);
+    }
+
+    public void deleteById(String index, Object id, String routing) throws IOException {
         //        var request = new DeleteRequest(index, id);
         var request = new DeleteRequest(index, config.getElasticType(), id.toString());
-        var response = elasticClient.delete(request, RequestOptions.DEFAULT);
+        if (routing != null)
+            request.routing(routing);
+        var response = writeLimiter.execute(() -> elasticClient.delete(request, RequestOptions.DEFAULT));
         if (response.status() != RestStatus.OK)
             throw new IOException("Delete failed: " + response.status().name());
     }
@@ -321,6 +486,18 @@ public class ElasticsearchClient implements Closeable {
         return JsonUtil.getList(json, config.getObjectMapper(), valueType);
     }
 
+    public <T> BulkInsert<T> bulkInsert(String index, int size) {
+        return bulkInsert(index, size, entity -> null);
+    }
+
+    public <T> BulkInsert<T> bulkInsert(String index, int size, Function<T, String> routingExtractor) {
+        return BulkInsert.create(elasticClient, config, index, size, writeLimiter, routingExtractor);
+    }
+
+    public BulkLoadSession bulkLoad(String index, int size) throws IOException {
+        return BulkLoadSession.open(this, index, size);
+    }
+
     @Override
     public void close() throws IOException {
         this.elasticClient.close();
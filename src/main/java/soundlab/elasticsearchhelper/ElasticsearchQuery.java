@@ -39,4 +39,5 @@ public class ElasticsearchQuery {
     List<String> excludeFields; // null means ignore
     @Builder.Default
     String idField = null; // null means ignore
+    String routing; // null means ignore
 }
@@ -3,17 +3,39 @@ package soundlab.elasticsearchhelper;
 import lombok.AccessLevel;
 import lombok.experimental.FieldDefaults;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.Optional;
+import java.util.function.Function;
 
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
 class ElasticsearchRepository<T, ID extends Serializable> {
     ElasticsearchClient elasticsearchClient;
+    Function<T, String> routingExtractor; // returning null means no routing
 
     public ElasticsearchRepository() {
-        elasticsearchClient = new ElasticsearchClient();
+        this(new ElasticsearchClient(), entity -> null);
     }
 
     public ElasticsearchRepository(ElasticsearchConfig config, String hostname, int port) {
-        elasticsearchClient = new ElasticsearchClient(config, hostname, port);
+        this(new ElasticsearchClient(config, hostname, port), entity -> null);
+    }
+
+    public ElasticsearchRepository(ElasticsearchClient elasticsearchClient, Function<T, String> routingExtractor) {
+        this.elasticsearchClient = elasticsearchClient;
+        this.routingExtractor = routingExtractor;
+    }
+
+    public String save(String index, ID id, T entity) throws IOException {
+        var json = JsonUtil.getJson(elasticsearchClient.getConfig().getObjectMapper(), entity);
+        return elasticsearchClient.save(index, id == null ? null : id.toString(), json, routingExtractor.apply(entity));
+    }
+
+    public Optional<T> findById(String index, ID id, String routing, Class<T> valueType) throws IOException {
+        return elasticsearchClient.findById(index, id, routing, valueType);
+    }
+
+    public void deleteById(String index, ID id, String routing) throws IOException {
+        elasticsearchClient.deleteById(index, id, routing);
     }
 }
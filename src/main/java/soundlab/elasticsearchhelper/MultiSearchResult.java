@@ -0,0 +1,42 @@
+package soundlab.elasticsearchhelper;
+
+public class MultiSearchResult {
+    private SearchResult result;
+    private Exception failure;
+
+    public MultiSearchResult() {
+    }
+
+    public MultiSearchResult(SearchResult result, Exception failure) {
+        this.result = result;
+        this.failure = failure;
+    }
+
+    public static MultiSearchResult success(SearchResult result) {
+        return new MultiSearchResult(result, null);
+    }
+
+    public static MultiSearchResult failure(Exception failure) {
+        return new MultiSearchResult(null, failure);
+    }
+
+    public boolean isFailure() {
+        return failure != null;
+    }
+
+    public SearchResult getResult() {
+        return result;
+    }
+
+    public void setResult(SearchResult result) {
+        this.result = result;
+    }
+
+    public Exception getFailure() {
+        return failure;
+    }
+
+    public void setFailure(Exception failure) {
+        this.failure = failure;
+    }
+}
@@ -0,0 +1,124 @@
+package soundlab.elasticsearchhelper;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import org.elasticsearch.action.admin.cluster.storedscripts.PutStoredScriptRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.script.mustache.SearchTemplateRequest;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Query compiled once from an {@link ElasticsearchQuery} into a mustache search template. Once stored, each call
+ * only sends the script id and bound parameters, no search builders are allocated or serialized per request.
+ * Inline templates send and serialize the whole source on every call, which is no cheaper than building the query.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class PreparedQuery {
+    private static final String TEMPLATE_LANG = "mustache";
+    private static final String SCRIPT_ID_PREFIX = "prepared_query_";
+
+    ElasticsearchClient client;
+    ElasticsearchQuery elasticHelperQuery;
+    SearchRequest searchRequest; // indices, routing and scroll, body comes from the template
+    @Getter
+    String source;
+
+    @NonFinal
+    volatile String storedScriptId; // null means inline template
+
+    PreparedQuery(ElasticsearchClient client, ElasticsearchQuery elasticHelperQuery, SearchRequest searchRequest,
+                  String source) {
+        this.client = client;
+        this.elasticHelperQuery = elasticHelperQuery;
+        this.searchRequest = searchRequest;
+        this.source = source;
+    }
+
+    /**
+     * Id of a stored template, equal sources share the same id
+     *
+     * @param source template source
+     * @return stored script id
+     */
+    static String scriptId(String source) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+            return SCRIPT_ID_PREFIX + new BigInteger(1, digest).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Stores the template in the cluster, so later calls only send its id and parameters
+     *
+     * @param id stored script id
+     * @return this prepared query
+     */
+    public PreparedQuery store(String id) throws IOException {
+        var content = XContentFactory.jsonBuilder()
+                .startObject()
+                .startObject("script")
+                .field("lang", TEMPLATE_LANG)
+                .field("source", source)
+                .endObject()
+                .endObject();
+        var request = new PutStoredScriptRequest().id(id).content(BytesReference.bytes(content), XContentType.JSON);
+        var response = client.getWriteLimiter()
+                .execute(() -> client.getElasticClient().putScript(request, RequestOptions.DEFAULT));
+        if (!response.isAcknowledged())
+            throw new IOException("Storing search template is not acknowledged: " + id);
+        useStoredScript(id);
+        return this;
+    }
+
+    /**
+     * Refers to an already stored template instead of the inline source
+     *
+     * @param id stored script id
+     */
+    void useStoredScript(String id) {
+        storedScriptId = id;
+    }
+
+    public SearchResult queryAll(Map<String, Object> params) throws IOException {
+        var request = buildRequest(params);
+        var response = client.getReadLimiter()
+                .execute(() -> client.getElasticClient().searchTemplate(request, RequestOptions.DEFAULT));
+        return client.toSearchResult(elasticHelperQuery, response.getResponse());
+    }
+
+    public <T> List<T> queryAll(Map<String, Object> params, Class<T> valueType) throws IOException {
+        var json = queryAll(params).getResult();
+        return JsonUtil.getList(json, client.getConfig().getObjectMapper(), valueType);
+    }
+
+    SearchTemplateRequest buildRequest(Map<String, Object> params) {
+        var request = new SearchTemplateRequest(searchRequest);
+        var scriptId = storedScriptId;
+        if (scriptId == null) {
+            request.setScriptType(ScriptType.INLINE);
+            request.setScript(source);
+        } else {
+            request.setScriptType(ScriptType.STORED);
+            request.setScript(scriptId);
+        }
+        request.setScriptParams(params);
+        return request;
+    }
+}
@@ -0,0 +1,413 @@
+package soundlab.elasticsearchhelper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.mapper.RoutingFieldMapper;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Copies documents from source query to target index: (sliced) scroll, transform, then concurrent bulk requests.
+ * Stages are connected with a bounded buffer, so memory stays constant regardless of index size.
+ * <p>
+ * When checkpointPath and checkpointField are set, each slice is sorted by checkpointField and the last value
+ * fully written to the target is saved after every bulk. A rerun with the same settings resumes after the saved
+ * values. checkpointField must be unique and sortable (e.g. a keyword id or a timestamp with unique values).
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class ReindexPipeline {
+    private static final long POLL_MILLIS = 100;
+
+    ElasticsearchClient client;
+    ElasticsearchQuery sourceQuery;
+    String targetIndex;
+    Function<String, String> transform; // returning null skips the document
+    int slices;
+    int batchSize;
+    int bulkConcurrency;
+    int bufferCapacity;
+    String scroll;
+    String checkpointField; // null means no resume support
+    Path checkpointPath; // null means no checkpoints
+
+    AtomicLong docs = new AtomicLong();
+    AtomicLong bytes = new AtomicLong();
+    Map<Integer, SliceProgress> progress = new HashMap<>();
+
+    @NonFinal
+    volatile boolean readersDone;
+    @NonFinal
+    volatile boolean aborted;
+    @NonFinal
+    volatile long startNanos;
+    @NonFinal
+    volatile long endNanos; // zero while running
+
+    @Builder
+    private ReindexPipeline(ElasticsearchClient client, ElasticsearchQuery sourceQuery, String targetIndex,
+                            Function<String, String> transform, int slices, int batchSize, int bulkConcurrency,
+                            int bufferCapacity, String scroll, String checkpointField, Path checkpointPath) {
+        if (client == null || sourceQuery == null || sourceQuery.getQuery() == null || targetIndex == null)
+            throw new IllegalArgumentException("Client, source query and target index must be set");
+        if (slices < 1 || batchSize < 1 || bulkConcurrency < 1 || bufferCapacity < 1)
+            throw new IllegalArgumentException("Slices, batch size, bulk concurrency and buffer must be positive");
+        // sorting by the field only pays off when the position is saved
+        if ((checkpointPath == null) != (checkpointField == null))
+            throw new IllegalArgumentException("Checkpoint field and checkpoint path must be set together");
+        this.client = client;
+        this.sourceQuery = sourceQuery;
+        this.targetIndex = targetIndex;
+        this.transform = transform;
+        this.slices = slices;
+        this.batchSize = batchSize;
+        this.bulkConcurrency = bulkConcurrency;
+        this.bufferCapacity = bufferCapacity;
+        this.scroll = scroll;
+        this.checkpointField = checkpointField;
+        this.checkpointPath = checkpointPath;
+    }
+
+    public static ReindexPipelineBuilder builder() {
+        return new ReindexPipelineBuilder()
+                .transform(Function.identity())
+                .slices(1)
+                .batchSize(1000)
+                .bulkConcurrency(2)
+                .bufferCapacity(4)
+                .scroll("1m");
+    }
+
+    /**
+     * Runs the pipeline until all source documents are written. Checkpoint file is removed on success.
+     * Each run starts its statistics from zero.
+     *
+     * @return final throughput statistics
+     */
+    public ReindexStats run() throws IOException {
+        initProgress();
+        docs.set(0);
+        bytes.set(0);
+        readersDone = false;
+        aborted = false;
+
+        BlockingQueue<Batch> buffer = new ArrayBlockingQueue<>(bufferCapacity);
+        var readers = Executors.newFixedThreadPool(slices);
+        var writers = Executors.newFixedThreadPool(bulkConcurrency);
+        endNanos = 0;
+        startNanos = System.nanoTime();
+        try {
+            List<Future<Void>> readerFutures = new ArrayList<>();
+            for (var slice = 0; slice < slices; slice++) {
+                var sliceId = slice;
+                readerFutures.add(readers.submit(stage(() -> readSlice(sliceId, buffer))));
+            }
+            List<Future<Void>> writerFutures = new ArrayList<>();
+            for (var i = 0; i < bulkConcurrency; i++)
+                writerFutures.add(writers.submit(stage(() -> writeBatches(buffer))));
+
+            var failure = await(readerFutures);
+            readersDone = true;
+            var writerFailure = await(writerFutures);
+            if (failure == null)
+                failure = writerFailure;
+            if (failure != null)
+                throw failure;
+        } finally {
+            readers.shutdownNow();
+            writers.shutdownNow();
+            endNanos = System.nanoTime();
+        }
+
+        if (checkpointPath != null)
+            Files.deleteIfExists(checkpointPath);
+        return getStats();
+    }
+
+    public ReindexStats getStats() {
+        // a finished run keeps its elapsed time, so throughput does not decay afterwards
+        var end = endNanos == 0 ? System.nanoTime() : endNanos;
+        var elapsed = startNanos == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(end - startNanos);
+        return new ReindexStats(docs.get(), bytes.get(), elapsed);
+    }
+
+    private Callable<Void> stage(Stage stage) {
+        return () -> {
+            try {
+                stage.run();
+                return null;
+            } catch (Exception e) {
+                aborted = true;
+                throw e;
+            }
+        };
+    }
+
+    private IOException await(List<Future<Void>> futures) {
+        IOException failure = null;
+        for (var future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                aborted = true;
+                Thread.currentThread().interrupt();
+                if (failure == null)
+                    failure = new InterruptedIOException("Interrupted while reindexing");
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                            : new IOException(e.getCause());
+            }
+        }
+        return failure;
+    }
+
+    private void readSlice(int slice, BlockingQueue<Batch> buffer) throws IOException, InterruptedException {
+        var searchSourceBuilder = new SearchSourceBuilder()
+                .query(sliceQuery(progress.get(slice).getCheckpoint()))
+                .size(batchSize);
+        if (slices > 1)
+            searchSourceBuilder.slice(new SliceBuilder(slice, slices));
+        if (checkpointField != null)
+            searchSourceBuilder.sort(checkpointField, SortOrder.ASC);
+        else
+            searchSourceBuilder.sort("_doc");
+
+        // source filtering
+        if (!sourceQuery.getIncludeFields().isEmpty() || !sourceQuery.getExcludeFields().isEmpty())
+            searchSourceBuilder.fetchSource(sourceQuery.getIncludeFields().toArray(new String[0]),
+                    sourceQuery.getExcludeFields().toArray(new String[0]));
+
+        var searchRequest = new SearchRequest(sourceQuery.getIndices().toArray(new String[0]))
+                .source(searchSourceBuilder)
+                .scroll(scroll);
+        if (sourceQuery.getRouting() != null)
+            searchRequest.routing(sourceQuery.getRouting());
+        var elasticClient = client.getElasticClient();
+        var searchResponse = client.getReadLimiter()
+                .execute(() -> elasticClient.search(searchRequest, RequestOptions.DEFAULT));
+        var scrollId = searchResponse.getScrollId();
+        try {
+            var sequence = 0L;
+            var searchHits = searchResponse.getHits().getHits();
+            while (searchHits.length > 0 && !aborted) {
+                var batch = toBatch(slice, sequence++, searchHits);
+                while (!buffer.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (aborted)
+                        return;
+                }
+                searchResponse = scroll(scrollId);
+                scrollId = searchResponse.getScrollId();
+                searchHits = searchResponse.getHits().getHits();
+            }
+        } finally {
+            clearScroll(scrollId);
+        }
+    }
+
+    QueryBuilder sliceQuery(Object checkpoint) {
+        if (checkpoint == null)
+            return sourceQuery.getQuery();
+        return QueryBuilders.boolQuery()
+                .must(sourceQuery.getQuery())
+                .filter(QueryBuilders.rangeQuery(checkpointField).gt(checkpoint));
+    }
+
+    private SearchResponse scroll(String scrollId) throws IOException {
+        var scrollRequest = new SearchScrollRequest(scrollId).scroll(scroll);
+        return client.getReadLimiter()
+                .execute(() -> client.getElasticClient().scroll(scrollRequest, RequestOptions.DEFAULT));
+    }
+
+    private void clearScroll(String scrollId) {
+        if (scrollId == null || scrollId.isEmpty())
+            return;
+        var clearScrollRequest = new ClearScrollRequest();
+        clearScrollRequest.addScrollId(scrollId);
+        try {
+            client.getElasticClient().clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
+        } catch (IOException | RuntimeException e) {
+            // scroll expires on its own anyway
+        }
+    }
+
+    private Batch toBatch(int slice, long sequence, SearchHit[] searchHits) {
+        List<IndexRequest> requests = new ArrayList<>(searchHits.length);
+        for (var hit : searchHits) {
+            var json = transform.apply(hit.getSourceAsString());
+            if (json == null)
+                continue;
+            var request = new IndexRequest(targetIndex, client.getConfig().getElasticType(), hit.getId())
+                    .source(json, XContentType.JSON);
+            // keep documents on the same routing as in the source index
+            var routing = hit.field(RoutingFieldMapper.NAME);
+            if (routing != null)
+                request.routing(routing.getValue());
+            requests.add(request);
+        }
+        var lastHit = searchHits[searchHits.length - 1];
+        var checkpoint = checkpointField == null ? null : lastHit.getSortValues()[0];
+        return new Batch(slice, sequence, requests, checkpoint);
+    }
+
+    private void writeBatches(BlockingQueue<Batch> buffer) throws IOException, InterruptedException {
+        while (!aborted) {
+            // read the flag before polling, so an empty poll after it means nothing is left
+            var done = readersDone;
+            var batch = buffer.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (batch == null) {
+                if (done)
+                    return;
+                continue;
+            }
+
+            var batchBytes = 0L;
+            if (!batch.requests.isEmpty()) {
+                var bulkRequest = new BulkRequest();
+                for (var request : batch.requests) {
+                    bulkRequest.add(request);
+                    batchBytes += request.source().length();
+                }
+                var bulkResponse = client.getWriteLimiter()
+                        .execute(() -> client.getElasticClient().bulk(bulkRequest, RequestOptions.DEFAULT),
+                                BulkInsert::isRejected);
+                if (bulkResponse.hasFailures())
+                    throw new IOException("Bulk error: " + bulkResponse.buildFailureMessage());
+            }
+            docs.addAndGet(batch.requests.size());
+            bytes.addAndGet(batchBytes);
+            acknowledge(batch);
+        }
+    }
+
+    private void acknowledge(Batch batch) throws IOException {
+        var sliceProgress = progress.get(batch.slice);
+        if (!sliceProgress.acknowledge(batch.sequence, batch.checkpoint) || checkpointPath == null)
+            return;
+        saveCheckpoints();
+    }
+
+    void initProgress() throws IOException {
+        var checkpoints = loadCheckpoints();
+        progress.clear();
+        for (var slice = 0; slice < slices; slice++)
+            progress.put(slice, new SliceProgress(checkpoints.get(String.valueOf(slice))));
+    }
+
+    SliceProgress getProgress(int slice) {
+        return progress.get(slice);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> loadCheckpoints() throws IOException {
+        if (checkpointPath == null || !Files.exists(checkpointPath))
+            return new HashMap<>();
+        var saved = objectMapper().readValue(checkpointPath.toFile(), Map.class);
+        var savedSlices = ((Number) saved.get("slices")).intValue();
+        if (savedSlices != slices || !checkpointField.equals(saved.get("field")))
+            throw new IllegalArgumentException("Checkpoint was saved with " + savedSlices + " slices by field "
+                    + saved.get("field"));
+        return (Map<String, Object>) saved.get("positions");
+    }
+
+    synchronized void saveCheckpoints() throws IOException {
+        Map<String, Object> positions = new HashMap<>();
+        progress.forEach((slice, sliceProgress) -> {
+            var checkpoint = sliceProgress.getCheckpoint();
+            if (checkpoint != null)
+                positions.put(String.valueOf(slice), checkpoint);
+        });
+        Map<String, Object> saved = new HashMap<>();
+        saved.put("slices", slices);
+        saved.put("field", checkpointField);
+        saved.put("positions", positions);
+
+        // write aside and move, so an interrupted write never corrupts the previous checkpoint
+        var tempPath = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        objectMapper().writeValue(tempPath.toFile(), saved);
+        Files.move(tempPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private ObjectMapper objectMapper() {
+        return client.getConfig().getObjectMapper();
+    }
+
+    @FunctionalInterface
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    @AllArgsConstructor
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    private static class Batch {
+        int slice;
+        long sequence;
+        List<IndexRequest> requests;
+        Object checkpoint; // sort value of the last source hit, null without checkpoint field
+    }
+
+    /**
+     * Tracks bulk completions of a slice, which may finish out of order, and keeps the checkpoint at the last
+     * batch whose predecessors are all written
+     */
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    static class SliceProgress {
+        final TreeMap<Long, Object> completed = new TreeMap<>();
+        long nextSequence;
+        Object checkpoint;
+
+        SliceProgress(Object checkpoint) {
+            this.checkpoint = checkpoint;
+        }
+
+        synchronized Object getCheckpoint() {
+            return checkpoint;
+        }
+
+        synchronized boolean acknowledge(long sequence, Object batchCheckpoint) {
+            completed.put(sequence, batchCheckpoint);
+            var advanced = false;
+            while (completed.containsKey(nextSequence)) {
+                checkpoint = completed.remove(nextSequence);
+                nextSequence++;
+                advanced = true;
+            }
+            return advanced;
+        }
+    }
+}
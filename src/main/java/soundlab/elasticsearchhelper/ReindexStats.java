@@ -0,0 +1,29 @@
+package soundlab.elasticsearchhelper;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.experimental.FieldDefaults;
+
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@AllArgsConstructor
+@Getter
+public class ReindexStats {
+    long docs;
+    long bytes;
+    long elapsedMillis;
+
+    public double getDocsPerSecond() {
+        return elapsedMillis == 0 ? 0 : docs * 1000.0 / elapsedMillis;
+    }
+
+    public double getBytesPerSecond() {
+        return elapsedMillis == 0 ? 0 : bytes * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d docs, %d bytes in %d ms (%.1f docs/s, %.1f bytes/s)", docs, bytes, elapsedMillis,
+                getDocsPerSecond(), getBytesPerSecond());
+    }
+}
@@ -0,0 +1,151 @@
+package soundlab.elasticsearchhelper;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Merges concurrent {@link ElasticsearchClient#queryAll(ElasticsearchQuery)} calls from different threads into
+ * multi search batches.
+ * <p>
+ * The first caller of a batch waits up to lingerMillis for other callers to join, then runs the batch on its own
+ * thread and hands the results to the others. The caller filling a batch to maxBatchSize sends it right away.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class SearchCoalescer {
+    ElasticsearchClient client;
+    int maxBatchSize;
+    long lingerMillis;
+    int maxConcurrentSearches;
+    Object lock = new Object();
+
+    @NonFinal
+    List<PendingQuery> pending = new ArrayList<>();
+
+    public SearchCoalescer(ElasticsearchClient client, int maxBatchSize, long lingerMillis) {
+        this(client, maxBatchSize, lingerMillis, 0);
+    }
+
+    public SearchCoalescer(ElasticsearchClient client, int maxBatchSize, long lingerMillis,
+                           int maxConcurrentSearches) {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("Batch size must be positive: " + maxBatchSize);
+        this.client = client;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerMillis = lingerMillis;
+        this.maxConcurrentSearches = maxConcurrentSearches;
+    }
+
+    public SearchResult queryAll(ElasticsearchQuery elasticHelperQuery) throws IOException {
+        // validate before joining a batch, so a bad query cannot fail other callers
+        if (elasticHelperQuery.getQuery() == null)
+            throw new IllegalArgumentException("Query is not set in elasticHelperQuery");
+        // multi search cannot scroll
+        if (elasticHelperQuery.getScroll() != null)
+            return client.queryAll(elasticHelperQuery);
+
+        var pendingQuery = new PendingQuery(elasticHelperQuery, new CompletableFuture<>());
+        List<PendingQuery> batch;
+        List<PendingQuery> fullBatch = null;
+        boolean leader;
+        synchronized (lock) {
+            batch = pending;
+            batch.add(pendingQuery);
+            leader = batch.size() == 1;
+            // the caller filling the batch sends it, the leader finds it gone and just waits for its result
+            if (batch.size() >= maxBatchSize) {
+                pending = new ArrayList<>();
+                fullBatch = batch;
+                lock.notifyAll();
+            }
+        }
+
+        if (fullBatch != null)
+            execute(fullBatch);
+        else if (leader) {
+            var lingeredBatch = awaitBatch(batch);
+            if (lingeredBatch != null)
+                execute(lingeredBatch);
+        }
+
+        try {
+            return pendingQuery.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for coalesced search");
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Waits until linger time passes or another caller fills the batch
+     *
+     * @return the batch to send, null if it was already taken by a filling caller
+     */
+    private List<PendingQuery> awaitBatch(List<PendingQuery> batch) {
+        synchronized (lock) {
+            var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+            var remaining = deadline - System.nanoTime();
+            while (pending == batch && remaining > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                } catch (InterruptedException e) {
+                    // other callers are waiting on this batch, so send it anyway
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.nanoTime();
+            }
+            if (pending != batch)
+                return null;
+            pending = new ArrayList<>();
+            return batch;
+        }
+    }
+
+    private void execute(List<PendingQuery> batch) {
+        try {
+            if (batch.size() == 1) {
+                batch.get(0).result.complete(client.queryAll(batch.get(0).query));
+                return;
+            }
+            var queries = batch.stream().map(pendingQuery -> pendingQuery.query).collect(Collectors.toList());
+            var results = client.queryMany(queries, maxConcurrentSearches);
+            for (var i = 0; i < batch.size(); i++) {
+                var result = results.get(i);
+                if (result.isFailure())
+                    batch.get(i).result.completeExceptionally(result.getFailure());
+                else
+                    batch.get(i).result.complete(result.getResult());
+            }
+        } catch (Throwable e) {
+            // every caller of the batch waits on its future, none may be left incomplete
+            batch.forEach(pendingQuery -> pendingQuery.result.completeExceptionally(e));
+            if (e instanceof Error)
+                throw (Error) e;
+        }
+    }
+
+    @AllArgsConstructor
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    private static class PendingQuery {
+        ElasticsearchQuery query;
+        CompletableFuture<SearchResult> result;
+    }
+}
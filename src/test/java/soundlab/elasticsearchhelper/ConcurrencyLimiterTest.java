@@ -0,0 +1,161 @@
+package soundlab.elasticsearchhelper;
+
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConcurrencyLimiterTest {
+
+    @Test
+    public void rejectWhenLimitReached() throws IOException {
+        var limiter = ConcurrencyLimiter.builder()
+                .initialLimit(2)
+                .behaviour(ConcurrencyLimiter.Behaviour.REJECT)
+                .build();
+
+        var first = limiter.acquire();
+        var second = limiter.acquire();
+        assertEquals(2, limiter.getInFlight());
+
+        try {
+            limiter.acquire();
+            fail("Third permit should be rejected");
+        } catch (ConcurrencyLimitExceededException e) {
+            assertEquals(1, limiter.getRejectedCount());
+        }
+
+        first.ignore();
+        second.ignore();
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void queueTimesOut() throws IOException {
+        var limiter = ConcurrencyLimiter.builder()
+                .initialLimit(1)
+                .maxQueueTimeMillis(50)
+                .build();
+
+        var permit = limiter.acquire();
+        try {
+            limiter.acquire();
+            fail("Second permit should time out in queue");
+        } catch (ConcurrencyLimitExceededException e) {
+            assertEquals(0, limiter.getQueued());
+        }
+        permit.ignore();
+    }
+
+    @Test
+    public void queuedCallerGetsReleasedPermit() throws Exception {
+        var limiter = ConcurrencyLimiter.builder()
+                .initialLimit(1)
+                .build();
+
+        var permit = limiter.acquire();
+        var waiter = new Thread(() -> {
+            try {
+                limiter.acquire().ignore();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waiter.start();
+        while (limiter.getQueued() == 0)
+            Thread.sleep(1);
+
+        permit.ignore();
+        waiter.join(1000);
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getQueued());
+    }
+
+    @Test
+    public void backOffOnTooManyRequests() throws IOException {
+        var limiter = ConcurrencyLimiter.builder()
+                .initialLimit(100)
+                .smoothing(1.0)
+                .build();
+
+        try {
+            limiter.execute(() -> {
+                throw new ElasticsearchStatusException("rejected", RestStatus.TOO_MANY_REQUESTS);
+            });
+            fail("Exception should be propagated");
+        } catch (ElasticsearchStatusException e) {
+            assertEquals(90, limiter.getLimit());
+            assertEquals(1, limiter.getDroppedCount());
+        }
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void backOffOnRejectedResponse() throws IOException {
+        var limiter = ConcurrencyLimiter.builder()
+                .initialLimit(100)
+                .smoothing(1.0)
+                .build();
+
+        var result = limiter.execute(() -> "partially rejected", response -> true);
+
+        assertEquals("partially rejected", result);
+        assertEquals(90, limiter.getLimit());
+        assertEquals(1, limiter.getDroppedCount());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void backOffOnSocketTimeout() throws IOException {
+        var limiter = ConcurrencyLimiter.builder()
+                .initialLimit(100)
+                .smoothing(1.0)
+                .build();
+
+        try {
+            limiter.execute(() -> {
+                throw new SocketTimeoutException("timed out");
+            }, response -> false);
+            fail("Exception should be propagated");
+        } catch (SocketTimeoutException e) {
+            assertEquals(90, limiter.getLimit());
+        }
+    }
+
+    @Test
+    public void defaultQueueTimeIsFinite() {
+        var limiter = ConcurrencyLimiter.builder().build();
+
+        assertTrue(limiter.getMaxQueueTimeMillis() > 0);
+    }
+
+    @Test
+    public void limitStaysWithinBounds() throws IOException {
+        var limiter = ConcurrencyLimiter.builder()
+                .initialLimit(4)
+                .minLimit(2)
+                .maxLimit(8)
+                .smoothing(1.0)
+                .build();
+
+        for (var i = 0; i < 20; i++)
+            limiter.acquire().dropped();
+        assertEquals(2, limiter.getLimit());
+
+        for (var i = 0; i < 100; i++) {
+            var permits = new ConcurrencyLimiter.Permit[limiter.getLimit()];
+            for (var j = 0; j < permits.length; j++)
+                permits[j] = limiter.acquire();
+            for (var permit : permits)
+                permit.success();
+        }
+        assertTrue(limiter.getLimit() <= 8);
+        assertTrue(limiter.getLimit() > 2);
+    }
+}
@@ -6,14 +6,31 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.experimental.FieldDefaults;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.script.ScriptType;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
 public class ElasticsearchClientTest {
@@ -80,6 +97,266 @@ public class ElasticsearchClientTest {
         assertEquals(mapper.readTree(expected), mapper.readTree(result.getResult()));
     }
 
+    @Test
+    public void count() throws IOException {
+        var elasticHelper = new ElasticsearchClient();
+        var query = QueryBuilders.prefixQuery("name", "test");
+        var builder = ElasticsearchQuery.builder().query(query)
+                .index(INDEX_NAME)
+                .build();
+
+        assertEquals(100, elasticHelper.count(builder));
+    }
+
+    @Test
+    public void exists() throws IOException {
+        var elasticHelper = new ElasticsearchClient();
+        var existing = ElasticsearchQuery.builder().query(QueryBuilders.termQuery("name", "test46"))
+                .index(INDEX_NAME)
+                .build();
+        var missing = ElasticsearchQuery.builder().query(QueryBuilders.termQuery("name", "test1000"))
+                .index(INDEX_NAME)
+                .build();
+
+        assertTrue(elasticHelper.exists(existing));
+        assertFalse(elasticHelper.exists(missing));
+    }
+
+    @Test
+    public void queryMany() throws IOException {
+        var elasticHelper = new ElasticsearchClient();
+        var queries = new ArrayList<ElasticsearchQuery>();
+        for (var id : new int[]{46, 12, 87}) {
+            queries.add(ElasticsearchQuery.builder().query(QueryBuilders.termQuery("name", "test" + id))
+                    .index(INDEX_NAME)
+                    .build());
+        }
+
+        var results = elasticHelper.queryMany(queries, 2);
+
+        assertEquals(3, results.size());
+        var expectedIds = new int[]{46, 12, 87};
+        for (var i = 0; i < expectedIds.length; i++) {
+            assertFalse(results.get(i).isFailure());
+            var expected = JsonUtil.getJson(mapper, List.of(new TestEntity(expectedIds[i], "test" + expectedIds[i])));
+            assertEquals(mapper.readTree(expected), mapper.readTree(results.get(i).getResult().getResult()));
+        }
+    }
+
+    @Test
+    public void queryManyReportsFailuresPerQuery() throws IOException {
+        var elasticHelper = new ElasticsearchClient();
+        var valid = ElasticsearchQuery.builder().query(QueryBuilders.termQuery("name", "test46"))
+                .index(INDEX_NAME)
+                .build();
+        var missingIndex = ElasticsearchQuery.builder().query(QueryBuilders.matchAllQuery())
+                .index("missing_index")
+                .build();
+        var invalid = ElasticsearchQuery.builder()
+                .index(INDEX_NAME)
+                .build();
+
+        var results = elasticHelper.queryMany(List.of(invalid, valid, missingIndex));
+
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).getFailure() instanceof IllegalArgumentException);
+        assertFalse(results.get(1).isFailure());
+        assertEquals(1, results.get(1).getResult().getSize());
+        assertTrue(results.get(2).isFailure());
+    }
+
+    @Test
+    public void preparedQuery() throws IOException {
+        var elasticHelper = new ElasticsearchClient();
+        var query = ElasticsearchQuery.builder()
+                .query(QueryBuilders.termQuery("name", "{{name}}"))
+                .index(INDEX_NAME)
+                .build();
+
+        // stored by default, only the id is sent
+        var preparedQuery = elasticHelper.prepare(query);
+        var request = preparedQuery.buildRequest(Map.of());
+        assertEquals(ScriptType.STORED, request.getScriptType());
+        assertEquals(PreparedQuery.scriptId(preparedQuery.getSource()), request.getScript());
+        for (var id : new int[]{46, 12}) {
+            var expected = List.of(new TestEntity(id, "test" + id));
+            assertEquals(expected, preparedQuery.queryAll(Map.of("name", "test" + id), TestEntity.class));
+        }
+
+        var inlineQuery = elasticHelper.prepareInline(query);
+        assertEquals(List.of(new TestEntity(87, "test87")),
+                inlineQuery.queryAll(Map.of("name", "test87"), TestEntity.class));
+
+        inlineQuery.store("test_entity_by_name");
+        assertEquals(List.of(new TestEntity(33, "test33")),
+                inlineQuery.queryAll(Map.of("name", "test33"), TestEntity.class));
+    }
+
+    @Test
+    public void reindex() throws Exception {
+        var elasticHelper = new ElasticsearchClient();
+        var targetIndex = INDEX_NAME + "_copy";
+        var checkpointPath = Files.createTempFile("reindex", ".json");
+        Files.delete(checkpointPath);
+        var indices = elasticHelper.getElasticClient().indices();
+        if (indices.exists(new GetIndexRequest(targetIndex), RequestOptions.DEFAULT))
+            indices.delete(new DeleteIndexRequest(targetIndex), RequestOptions.DEFAULT);
+
+        // resume as if ids up to 90 were already copied
+        Files.writeString(checkpointPath, "{\"slices\":2,\"field\":\"id\",\"positions\":{\"0\":90,\"1\":90}}");
+        var pipeline = ReindexPipeline.builder()
+                .client(elasticHelper)
+                .sourceQuery(ElasticsearchQuery.builder().query(QueryBuilders.rangeQuery("id").lte(100))
+                        .index(INDEX_NAME)
+                        .build())
+                .targetIndex(targetIndex)
+                .transform(json -> json.replace("test", "copy"))
+                .slices(2)
+                .batchSize(3)
+                .checkpointField("id")
+                .checkpointPath(checkpointPath)
+                .build();
+        var stats = pipeline.run();
+        indices.refresh(new RefreshRequest(targetIndex), RequestOptions.DEFAULT);
+
+        assertEquals(10, stats.getDocs());
+        // elapsed time stops with the run
+        Thread.sleep(20);
+        assertEquals(stats.getElapsedMillis(), pipeline.getStats().getElapsedMillis());
+        assertTrue(stats.getBytes() > 0);
+        assertFalse(Files.exists(checkpointPath));
+        var copied = elasticHelper.queryAll(ElasticsearchQuery.builder().query(QueryBuilders.matchAllQuery())
+                .index(targetIndex)
+                .size(100)
+                .sortFieldName("id")
+                .build(), TestEntity.class);
+        var expected = new ArrayList<TestEntity>();
+        for (var i = 91; i < 101; i++)
+            expected.add(new TestEntity(i, "copy" + i));
+        assertEquals(expected, copied);
+    }
+
+    @Test
+    public void bulkLoad() throws IOException {
+        var elasticHelper = new ElasticsearchClient();
+        var index = createBulkLoadIndex(elasticHelper);
+
+        try (var session = BulkLoadSession.builder().client(elasticHelper).index(index).size(3).open()) {
+            assertEquals("-1", getSetting(elasticHelper, index, "index.refresh_interval"));
+            assertEquals("false", getSetting(elasticHelper, index, "index.auto_expand_replicas"));
+            assertEquals("0", getSetting(elasticHelper, index, "index.number_of_replicas"));
+            for (var i = 1; i < 11; i++)
+                session.save(new TestEntity(i, "test" + i));
+        }
+
+        // closing refreshes, so documents are visible right away
+        var query = ElasticsearchQuery.builder().query(QueryBuilders.matchAllQuery()).index(index).build();
+        assertEquals(10, elasticHelper.count(query));
+        assertEquals("5s", getSetting(elasticHelper, index, "index.refresh_interval"));
+        assertEquals("0-1", getSetting(elasticHelper, index, "index.auto_expand_replicas"));
+    }
+
+    @Test
+    public void bulkLoadRestoresSettingsOnFailure() throws IOException {
+        var elasticHelper = new ElasticsearchClient();
+        var index = createBulkLoadIndex(elasticHelper);
+
+        var session = BulkLoadSession.open(elasticHelper, index, 10);
+        session.save(new TestEntity(1, "test1"));
+        // id is mapped as long
+        session.save(Map.of("id", "not a number"));
+        try {
+            session.close();
+            fail("Bulk error expected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Bulk error"));
+        }
+
+        assertEquals("5s", getSetting(elasticHelper, index, "index.refresh_interval"));
+        assertEquals("0-1", getSetting(elasticHelper, index, "index.auto_expand_replicas"));
+    }
+
+    @Test
+    public void bulkLoadPollsUntilGreen() throws Exception {
+        var elasticHelper = new ElasticsearchClient();
+        // a replica can not be assigned on a single node, so the index stays yellow once replicas are restored
+        var index = createBulkLoadIndex(elasticHelper, Settings.builder().put("index.number_of_replicas", 1));
+
+        var session = BulkLoadSession.builder()
+                .client(elasticHelper)
+                .index(index)
+                .size(10)
+                .greenTimeout("30s")
+                .healthPollTimeout("200ms")
+                .open();
+        session.save(new TestEntity(1, "test1"));
+
+        var dropReplicas = new Thread(() -> {
+            try {
+                Thread.sleep(1000);
+                var request = new UpdateSettingsRequest(index)
+                        .settings(Settings.builder().put("index.number_of_replicas", 0));
+                elasticHelper.getElasticClient().indices().putSettings(request, RequestOptions.DEFAULT);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        var start = System.nanoTime();
+        dropReplicas.start();
+        session.close();
+        dropReplicas.join();
+
+        // green came only after several polls
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 1000);
+    }
+
+    @Test
+    public void bulkLoadGreenTimeout() throws IOException {
+        var elasticHelper = new ElasticsearchClient();
+        var index = createBulkLoadIndex(elasticHelper, Settings.builder().put("index.number_of_replicas", 1));
+
+        var session = BulkLoadSession.builder()
+                .client(elasticHelper)
+                .index(index)
+                .size(10)
+                .greenTimeout("1s")
+                .healthPollTimeout("200ms")
+                .open();
+        try {
+            session.close();
+            fail("Index should stay yellow");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Indices did not turn green"));
+        }
+        assertEquals("1", getSetting(elasticHelper, index, "index.number_of_replicas"));
+    }
+
+    private static String createBulkLoadIndex(ElasticsearchClient elasticHelper) throws IOException {
+        return createBulkLoadIndex(elasticHelper, Settings.builder()
+                .put("index.refresh_interval", "5s")
+                .put("index.auto_expand_replicas", "0-1"));
+    }
+
+    private static String createBulkLoadIndex(ElasticsearchClient elasticHelper, Settings.Builder settings)
+            throws IOException {
+        var index = "bulk_load_test";
+        var indices = elasticHelper.getElasticClient().indices();
+        if (indices.exists(new GetIndexRequest(index), RequestOptions.DEFAULT))
+            indices.delete(new DeleteIndexRequest(index), RequestOptions.DEFAULT);
+        indices.create(new CreateIndexRequest(index)
+                .settings(settings)
+                .mapping("{\"properties\":{\"id\":{\"type\":\"long\"}}}", XContentType.JSON),
+                RequestOptions.DEFAULT);
+        return index;
+    }
+
+    private static String getSetting(ElasticsearchClient elasticHelper, String index, String name)
+            throws IOException {
+        var request = new GetSettingsRequest().indices(index).names(name);
+        return elasticHelper.getElasticClient().indices().getSettings(request, RequestOptions.DEFAULT)
+                .getSetting(index, name);
+    }
+
     @Test
     public void findById() throws IOException {
         var elasticHelper = new ElasticsearchClient();
@@ -115,6 +392,93 @@ public class ElasticsearchClientTest {
         assert testRecord.isEmpty();
     }
 
+    @Test
+    public void saveRejectsUnwrapped() throws IOException {
+        var writeLimiter = ConcurrencyLimiter.builder()
+                .initialLimit(1)
+                .behaviour(ConcurrencyLimiter.Behaviour.REJECT)
+                .build();
+        var elasticHelper = new ElasticsearchClient(new ElasticsearchConfig(), "localhost", 9200,
+                ConcurrencyLimiter.builder().build(), writeLimiter);
+
+        var permit = writeLimiter.acquire();
+        try {
+            elasticHelper.save(INDEX_NAME, JsonUtil.getJson(mapper, new TestEntity(103, "test103")));
+            fail("Save should be rejected");
+        } catch (ConcurrencyLimitExceededException e) {
+            assertEquals(1, writeLimiter.getRejectedCount());
+        } finally {
+            permit.ignore();
+        }
+    }
+
+    @Test
+    public void routing() throws IOException {
+        var elasticHelper = new ElasticsearchClient();
+        var id = 102;
+        var routing = "tenant1";
+
+        var entity = new TestEntity(id, "test" + id);
+        var json = JsonUtil.getJson(mapper, entity);
+        elasticHelper.save(INDEX_NAME, String.valueOf(id), json, routing);
+
+        var actual = elasticHelper.findById(INDEX_NAME, id, routing);
+        assert actual.isPresent();
+        assertEquals(mapper.readTree(json), mapper.readTree(actual.get()));
+
+        elasticHelper.deleteById(INDEX_NAME, id, routing);
+        assert elasticHelper.findById(INDEX_NAME, id, routing).isEmpty();
+    }
+
+    @Test
+    public void bulkInsertRouting() throws IOException {
+        var elasticHelper = new ElasticsearchClient();
+        var index = createRoutingIndex(elasticHelper);
+
+        var query = ElasticsearchQuery.builder()
+                .query(QueryBuilders.termQuery("_routing", "tenant1"))
+                .index(index)
+                .build();
+        assertEquals(5, elasticHelper.count(query));
+    }
+
+    @Test
+    public void queryRouting() throws IOException {
+        var elasticHelper = new ElasticsearchClient();
+        var index = createRoutingIndex(elasticHelper);
+
+        // tenant1 and tenant2 hash to different shards, so routing alone narrows match all down to tenant1
+        var query = ElasticsearchQuery.builder()
+                .query(QueryBuilders.matchAllQuery())
+                .index(index)
+                .routing("tenant1")
+                .build();
+        assertEquals(5, elasticHelper.count(query));
+        var entities = JsonUtil.getList(elasticHelper.queryAll(query).getResult(), mapper, TestEntity.class);
+        assertEquals(5, entities.size());
+        assertTrue(entities.stream().allMatch(entity -> entity.getId() % 2 == 0));
+    }
+
+    /**
+     * Creates a two shard index with ten entities, even ids routed by tenant1 and odd ids by tenant2
+     */
+    private static String createRoutingIndex(ElasticsearchClient elasticHelper) throws IOException {
+        var index = "routing_test";
+        var indices = elasticHelper.getElasticClient().indices();
+        if (indices.exists(new GetIndexRequest(index), RequestOptions.DEFAULT))
+            indices.delete(new DeleteIndexRequest(index), RequestOptions.DEFAULT);
+        indices.create(new CreateIndexRequest(index)
+                .settings(Settings.builder().put("index.number_of_shards", 2)), RequestOptions.DEFAULT);
+
+        try (var bulkInsert = elasticHelper.<TestEntity>bulkInsert(index, 3,
+                entity -> entity.getId() % 2 == 0 ? "tenant1" : "tenant2")) {
+            for (var i = 1; i < 11; i++)
+                bulkInsert.save(new TestEntity(i, "test" + i));
+        }
+        indices.refresh(new RefreshRequest(index), RequestOptions.DEFAULT);
+        return index;
+    }
+
     @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
     @Data
     @NoArgsConstructor(access = AccessLevel.PRIVATE, force = true)
@@ -0,0 +1,95 @@
+package soundlab.elasticsearchhelper;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares building and serializing a search body per call with binding parameters to a prepared query, stored
+ * as {@link ElasticsearchClient#prepare} does by default or inline. No cluster is needed, requests are only
+ * serialized. Run with the main method from the test classpath; JMH
+ * command line options are accepted, e.g. {@code -prof gc} to see allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PreparedQueryBenchmark {
+    ElasticsearchClient client;
+    PreparedQuery preparedQuery;
+    PreparedQuery inlineQuery;
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(PreparedQueryBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    private static ElasticsearchQuery query(String tenant, String name) {
+        return ElasticsearchQuery.builder()
+                .query(QueryBuilders.boolQuery()
+                        .filter(QueryBuilders.termQuery("tenant", tenant))
+                        .must(QueryBuilders.matchQuery("name", name)))
+                .index("test_entity")
+                .size(20)
+                .sortFieldName("created_at")
+                .sortOrder(SortOrder.DESC)
+                .highlightField("name")
+                .build();
+    }
+
+    @Setup
+    public void setUp() {
+        client = new ElasticsearchClient();
+        // what prepare() ends up with, without storing the template in a cluster
+        preparedQuery = client.prepareInline(query("{{tenant}}", "{{name}}"));
+        preparedQuery.useStoredScript(PreparedQuery.scriptId(preparedQuery.getSource()));
+        inlineQuery = client.prepareInline(query("{{tenant}}", "{{name}}"));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+    }
+
+    @Benchmark
+    public String buildPerCall() {
+        var searchRequest = client.buildSearchRequest(query("tenant1", "test46"));
+        return Strings.toString(searchRequest.source());
+    }
+
+    @Benchmark
+    public String prepared() {
+        var request = preparedQuery.buildRequest(Map.of("tenant", "tenant1", "name", "test46"));
+        return Strings.toString(request);
+    }
+
+    @Benchmark
+    public String preparedInline() {
+        var request = inlineQuery.buildRequest(Map.of("tenant", "tenant1", "name", "test46"));
+        return Strings.toString(request);
+    }
+}
@@ -0,0 +1,77 @@
+package soundlab.elasticsearchhelper;
+
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.script.ScriptType;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PreparedQueryTest {
+    private final ElasticsearchClient client = new ElasticsearchClient();
+
+    private PreparedQuery prepare() {
+        return client.prepareInline(ElasticsearchQuery.builder()
+                .query(QueryBuilders.termQuery("name", "{{name}}"))
+                .index("test_entity")
+                .routing("tenant1")
+                .scroll("1m")
+                .build());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+    }
+
+    @Test
+    public void inlineTemplate() {
+        var preparedQuery = prepare();
+
+        var request = preparedQuery.buildRequest(Map.of("name", "test46"));
+
+        assertEquals(ScriptType.INLINE, request.getScriptType());
+        assertEquals(preparedQuery.getSource(), request.getScript());
+        assertTrue(request.getScript().contains("{{name}}"));
+        assertEquals(Map.of("name", "test46"), request.getScriptParams());
+    }
+
+    @Test
+    public void storedTemplate() {
+        var preparedQuery = prepare();
+        preparedQuery.useStoredScript("name_template");
+
+        var request = preparedQuery.buildRequest(Map.of("name", "test46"));
+
+        assertEquals(ScriptType.STORED, request.getScriptType());
+        assertEquals("name_template", request.getScript());
+        assertEquals(Map.of("name", "test46"), request.getScriptParams());
+    }
+
+    @Test
+    public void scriptIdFollowsSource() {
+        var source = prepare().getSource();
+
+        assertEquals(PreparedQuery.scriptId(source), PreparedQuery.scriptId(prepare().getSource()));
+        assertNotEquals(PreparedQuery.scriptId(source), PreparedQuery.scriptId(source.replace("name", "tenant")));
+        assertTrue(PreparedQuery.scriptId(source).startsWith("prepared_query_"));
+    }
+
+    @Test
+    public void searchRequestKeepsIndicesRoutingAndScroll() {
+        var request = prepare().buildRequest(Map.of()).getRequest();
+
+        assertArrayEquals(new String[]{"test_entity"}, request.indices());
+        assertEquals("tenant1", request.routing());
+        assertEquals("1m", request.scroll().keepAlive().getStringRep());
+        // body comes from the template only
+        assertNull(request.source().query());
+    }
+}
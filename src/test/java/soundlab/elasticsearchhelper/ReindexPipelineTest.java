@@ -0,0 +1,138 @@
+package soundlab.elasticsearchhelper;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReindexPipelineTest {
+    private final ElasticsearchClient client = new ElasticsearchClient();
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("reindex");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        try (var files = Files.list(directory)) {
+            for (var file : (Iterable<Path>) files::iterator)
+                Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    private ReindexPipeline pipeline(int slices, String checkpointField) {
+        return ReindexPipeline.builder()
+                .client(client)
+                .sourceQuery(ElasticsearchQuery.builder().query(QueryBuilders.matchAllQuery()).index("source").build())
+                .targetIndex("target")
+                .slices(slices)
+                .checkpointField(checkpointField)
+                .checkpointPath(directory.resolve("checkpoint.json"))
+                .build();
+    }
+
+    @Test
+    public void checkpointWaitsForEarlierBatches() {
+        var progress = new ReindexPipeline.SliceProgress(null);
+
+        assertFalse(progress.acknowledge(1, 20));
+        assertNull(progress.getCheckpoint());
+
+        assertTrue(progress.acknowledge(0, 10));
+        assertEquals(20, progress.getCheckpoint());
+    }
+
+    @Test
+    public void checkpointStaysBehindGap() {
+        var progress = new ReindexPipeline.SliceProgress(5);
+
+        assertTrue(progress.acknowledge(0, 10));
+        assertFalse(progress.acknowledge(2, 30));
+        assertFalse(progress.acknowledge(3, 40));
+        assertEquals(10, progress.getCheckpoint());
+
+        assertTrue(progress.acknowledge(1, 20));
+        assertEquals(40, progress.getCheckpoint());
+    }
+
+    @Test
+    public void checkpointsSurviveRestart() throws IOException {
+        var first = pipeline(2, "id");
+        first.initProgress();
+        first.getProgress(0).acknowledge(0, 10);
+        first.getProgress(1).acknowledge(0, "b");
+        first.saveCheckpoints();
+        // rewrite replaces the previous file without leaving the temporary one behind
+        first.getProgress(0).acknowledge(1, 20);
+        first.saveCheckpoints();
+
+        try (var files = Files.list(directory)) {
+            assertEquals(1, files.count());
+        }
+
+        var second = pipeline(2, "id");
+        second.initProgress();
+        assertEquals(20, second.getProgress(0).getCheckpoint());
+        assertEquals("b", second.getProgress(1).getCheckpoint());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectCheckpointWithOtherSliceCount() throws IOException {
+        var first = pipeline(2, "id");
+        first.initProgress();
+        first.saveCheckpoints();
+
+        pipeline(3, "id").initProgress();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectCheckpointWithOtherField() throws IOException {
+        var first = pipeline(2, "id");
+        first.initProgress();
+        first.saveCheckpoints();
+
+        pipeline(2, "created_at").initProgress();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectCheckpointFieldWithoutPath() {
+        ReindexPipeline.builder()
+                .client(client)
+                .sourceQuery(ElasticsearchQuery.builder().query(QueryBuilders.matchAllQuery()).build())
+                .targetIndex("target")
+                .checkpointField("id")
+                .build();
+    }
+
+    @Test
+    public void resumeFiltersAfterCheckpoint() {
+        var pipeline = pipeline(1, "id");
+        var sourceQuery = QueryBuilders.matchAllQuery();
+
+        assertEquals(sourceQuery, pipeline.sliceQuery(null));
+
+        var query = (BoolQueryBuilder) pipeline.sliceQuery(42);
+        assertEquals(sourceQuery, query.must().get(0));
+        var range = (RangeQueryBuilder) query.filter().get(0);
+        assertEquals("id", range.fieldName());
+        assertEquals(42, range.from());
+        assertFalse(range.includeLower());
+        assertNull(range.to());
+    }
+}
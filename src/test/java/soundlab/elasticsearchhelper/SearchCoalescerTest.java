@@ -0,0 +1,140 @@
+package soundlab.elasticsearchhelper;
+
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SearchCoalescerTest {
+    private final StubClient client = new StubClient();
+
+    private static ElasticsearchQuery query(String index) {
+        return ElasticsearchQuery.builder().query(QueryBuilders.matchAllQuery()).index(index).build();
+    }
+
+    private static SearchResult result(ElasticsearchQuery query) {
+        return new SearchResult(query.getIndices().get(0), 0, 0, 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+    }
+
+    @Test
+    public void eachCallerGetsItsOwnResult() throws Exception {
+        var coalescer = new SearchCoalescer(client, 4, 50);
+
+        var results = runConcurrently(10, i -> coalescer.queryAll(query("index" + i)).getResult());
+
+        for (var i = 0; i < 10; i++)
+            assertEquals("index" + i, results.get(i).get(5, TimeUnit.SECONDS));
+        assertEquals(10, client.batchSizes.stream().mapToInt(Integer::intValue).sum());
+        assertTrue(client.batchSizes.stream().allMatch(size -> size <= 4));
+        assertTrue(client.batchSizes.stream().anyMatch(size -> size > 1));
+    }
+
+    @Test
+    public void lingerSendsPartialBatch() throws Exception {
+        var coalescer = new SearchCoalescer(client, 100, 20);
+
+        var results = runConcurrently(3, i -> coalescer.queryAll(query("index" + i)).getResult());
+
+        for (var i = 0; i < 3; i++)
+            assertEquals("index" + i, results.get(i).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void invalidQueryFailsOnlyItsCaller() throws Exception {
+        var coalescer = new SearchCoalescer(client, 4, 50);
+
+        var results = runConcurrently(4, i -> {
+            var query = i == 0 ? ElasticsearchQuery.builder().index("index0").build() : query("index" + i);
+            return coalescer.queryAll(query).getResult();
+        });
+
+        try {
+            results.get(0).get(5, TimeUnit.SECONDS);
+            fail("Query without query builder should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        for (var i = 1; i < 4; i++)
+            assertEquals("index" + i, results.get(i).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void errorCompletesWholeBatch() throws Exception {
+        client.error = new AssertionError("broken client");
+        var coalescer = new SearchCoalescer(client, 4, 50);
+
+        var results = runConcurrently(4, i -> coalescer.queryAll(query("index" + i)).getResult());
+
+        for (var result : results) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail("Batch error should reach every caller");
+            } catch (ExecutionException e) {
+                // sender sees the error itself, others get it wrapped
+                assertTrue(e.getCause() instanceof AssertionError || e.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    private List<Future<String>> runConcurrently(int callers, IndexedCall call) {
+        var executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (var i = 0; i < callers; i++) {
+                var index = i;
+                results.add(executor.submit((Callable<String>) () -> call.call(index)));
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @FunctionalInterface
+    private interface IndexedCall {
+        String call(int index) throws Exception;
+    }
+
+    private static class StubClient extends ElasticsearchClient {
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        volatile Error error;
+
+        @Override
+        public SearchResult queryAll(ElasticsearchQuery elasticHelperQuery) {
+            if (error != null)
+                throw error;
+            batchSizes.add(1);
+            return result(elasticHelperQuery);
+        }
+
+        @Override
+        public List<MultiSearchResult> queryMany(List<ElasticsearchQuery> elasticHelperQueries,
+                                                 int maxConcurrentSearches) {
+            if (error != null)
+                throw error;
+            batchSizes.add(elasticHelperQueries.size());
+            return elasticHelperQueries.stream()
+                    .map(query -> MultiSearchResult.success(result(query)))
+                    .collect(Collectors.toList());
+        }
+    }
+}